@@ -0,0 +1,444 @@
+package hihex.samplingprofiler;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+import dalvik.system.profiler.HprofData;
+import dalvik.system.profiler.HprofData.StackTrace;
+import dalvik.system.profiler.HprofData.ThreadEvent;
+import dalvik.system.profiler.SamplingProfiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A sampling profiler which keeps its own overhead within a budget.
+ *
+ * <p>
+ * Like {@link SamplingProfiler}, samples are collected using {@code Thread.getStackTrace}. The sampler measures the CPU
+ * time it spends on every tick, and doubles the interval when the average cost exceeds the budget, or halves it (down
+ * to the requested interval) when there is enough headroom. Optionally the depth is also reduced once the interval
+ * cannot be raised any further.
+ * </p>
+ *
+ * <p>
+ * Every sample is weighted by the time until the next sample (or until sampling stops), in units of the requested
+ * interval, so the counts in the resulting {@link HprofData} remain comparable to those of a profile taken at a fixed
+ * rate.
+ * </p>
+ *
+ * <pre>
+ * // Sample the current thread group every 10 ms, using at most 1% of one core.
+ * ThreadSet threadSet = SamplingProfiler.newThreadGroupTheadSet(Thread.currentThread().getThreadGroup());
+ * AdaptiveSamplingProfiler profiler = new AdaptiveSamplingProfiler(16, threadSet, 0.01, true);
+ * profiler.start(10);
+ * ...
+ * profiler.stop();
+ * profiler.shutdown();
+ * ParallelAsciiHprofWriter.write(profiler.getHprofData(), System.out);
+ * </pre>
+ *
+ * @author kennytm
+ */
+public final class AdaptiveSamplingProfiler {
+    /**
+     * The maximum ratio between the actual and the requested interval.
+     */
+    public static final int kMaxIntervalMultiplier = 64;
+
+    /**
+     * The minimum depth when the depth is adaptive.
+     */
+    public static final int kMinDepth = 4;
+
+    /**
+     * {@code BinaryHprof.ControlSettings.CPU_SAMPLING}, which is not exposed by the platform.
+     */
+    private static final int kCpuSamplingFlag = 0x02;
+
+    /**
+     * Weight of the latest tick in the moving average of the cost.
+     */
+    private static final double kCostSmoothing = 0.125;
+
+    /**
+     * Number of ticks to wait after an adjustment before speeding up again.
+     */
+    private static final int kSettleTicks = 8;
+
+    /**
+     * Only speed up again if the overhead after speeding up is still below this fraction of the budget.
+     */
+    private static final double kHeadroom = 0.75;
+
+    private final int mMaxDepth;
+    private final SamplingProfiler.ThreadSet mThreadSet;
+    private final double mOverheadBudget;
+    private final boolean mIsDepthAdaptive;
+
+    private final HprofData mHprofData;
+    private final Map<TraceKey, int[]> mStackTraces = new HashMap<TraceKey, int[]>();
+    private final Map<Thread, Integer> mThreadIds = new HashMap<Thread, Integer>();
+    private Thread[] mCurrentThreads = new Thread[0];
+    private final List<int[]> mLastCountCells = new ArrayList<int[]>();
+    private int mNextThreadId = 200001;
+    private int mNextObjectId = 100001;
+    private int mNextStackTraceId = 300001;
+
+    private volatile int mDepth;
+    private volatile int mIntervalMultiplier = 1;
+    private double mAverageCostNanos = 0;
+    private int mTicksSinceAdjustment = 0;
+
+    private Sampler mSampler = null;
+    private boolean mIsShutdown = false;
+
+    /**
+     * Create an adaptive sampling profiler.
+     *
+     * @param depth
+     *            The maximum stack depth to retain for each sample. See {@link SamplingProfiler#SamplingProfiler}.
+     * @param threadSet
+     *            The threads to sample.
+     * @param overheadBudget
+     *            The target CPU time spent on sampling, as a fraction of one core, e.g. 0.01 means 1%.
+     * @param isDepthAdaptive
+     *            Whether the depth may be reduced when the interval alone cannot keep the overhead within budget.
+     */
+    public AdaptiveSamplingProfiler(final int depth,
+                                    final SamplingProfiler.ThreadSet threadSet,
+                                    final double overheadBudget,
+                                    final boolean isDepthAdaptive) {
+        if (overheadBudget <= 0) {
+            throw new IllegalArgumentException("overheadBudget must be positive: " + overheadBudget);
+        }
+        mMaxDepth = depth;
+        mDepth = depth;
+        mThreadSet = threadSet;
+        mOverheadBudget = overheadBudget;
+        mIsDepthAdaptive = isDepthAdaptive;
+
+        mHprofData = new HprofData(new HashMap<StackTrace, int[]>());
+        mHprofData.setFlags(kCpuSamplingFlag);
+        mHprofData.setDepth(depth);
+    }
+
+    /**
+     * Starts profiler sampling.
+     *
+     * @param interval
+     *            The number of milliseconds between samples when the budget allows. The actual interval will be a
+     *            power-of-two multiple of this.
+     */
+    public synchronized void start(final int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval < 1");
+        }
+        if (mIsShutdown) {
+            throw new IllegalStateException("profiling already shut down");
+        }
+        if (mSampler != null) {
+            throw new IllegalStateException("profiling already started");
+        }
+        mHprofData.setStartMillis(System.currentTimeMillis());
+        mSampler = new Sampler(interval);
+        mSampler.start();
+    }
+
+    /**
+     * Stops profiler sampling. It can be restarted with {@link #start(int)} to continue sampling.
+     */
+    public synchronized void stop() {
+        if (mSampler == null) {
+            return;
+        }
+        mSampler.interrupt();
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                mSampler.join();
+                break;
+            } catch (final InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mSampler = null;
+    }
+
+    /**
+     * Shuts down profiling after which it can not be restarted. Shutting down the profiler also stops the profiling if
+     * that has not already been done.
+     */
+    public synchronized void shutdown() {
+        stop();
+        mIsShutdown = true;
+    }
+
+    /**
+     * Returns the hprof data accumulated by the profiler since it was created. The profiler needs to be stopped in
+     * order to access the data.
+     */
+    public HprofData getHprofData() {
+        return mHprofData;
+    }
+
+    /**
+     * Returns the current interval as a multiple of the requested interval. This is also the weight of every sample
+     * taken on schedule at the moment.
+     */
+    public int getIntervalMultiplier() {
+        return mIntervalMultiplier;
+    }
+
+    /**
+     * Returns the current maximum stack depth.
+     */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    private final class Sampler extends Thread {
+        private final int mBaseInterval;
+
+        Sampler(final int baseInterval) {
+            super("AdaptiveSamplingProfiler");
+            setDaemon(true);
+            mBaseInterval = baseInterval;
+        }
+
+        @Override
+        public void run() {
+            long nextTick = SystemClock.uptimeMillis();
+            long lastTick = -1;
+            while (!isInterrupted()) {
+                final long tick = SystemClock.uptimeMillis();
+                if (lastTick >= 0) {
+                    settleWeights(tick - lastTick);
+                }
+                lastTick = tick;
+
+                final long startCost = threadCpuTimeNanos();
+                sample();
+                final long cost = threadCpuTimeNanos() - startCost;
+                adjust(mBaseInterval, cost);
+
+                nextTick += (long) mBaseInterval * mIntervalMultiplier;
+                final long now = SystemClock.uptimeMillis();
+                if (nextTick <= now) {
+                    // We are behind schedule. Do not try to catch up, that would only make the overhead worse.
+                    nextTick = now;
+                    continue;
+                }
+                try {
+                    Thread.sleep(nextTick - now);
+                } catch (final InterruptedException e) {
+                    break;
+                }
+            }
+            if (lastTick >= 0) {
+                settleWeights(SystemClock.uptimeMillis() - lastTick);
+            }
+        }
+
+        /**
+         * Adds the remaining weight to the samples of the previous tick, now that the time they represent is known.
+         * This also covers ticks delayed by a slow sample or a busy scheduler.
+         */
+        private void settleWeights(final long elapsedMillis) {
+            final long weight = Math.max(1, Math.round((double) elapsedMillis / mBaseInterval));
+            final int extraWeight = (int) Math.min(weight - 1, Integer.MAX_VALUE);
+            for (final int[] countCell : mLastCountCells) {
+                countCell[0] += extraWeight;
+            }
+            mLastCountCells.clear();
+        }
+    }
+
+    private static long threadCpuTimeNanos() {
+        final long cpuTime = Debug.threadCpuTimeNanos();
+        return cpuTime >= 0 ? cpuTime : System.nanoTime();
+    }
+
+    private void sample() {
+        final Thread[] newThreads = mThreadSet.threads();
+        if (!Arrays.equals(mCurrentThreads, newThreads)) {
+            updateThreadHistory(newThreads);
+            mCurrentThreads = newThreads.clone();
+        }
+
+        final Thread self = Thread.currentThread();
+        final int depth = mDepth;
+        for (final Thread thread : mCurrentThreads) {
+            if (thread == null) {
+                break;
+            }
+            if (thread == self) {
+                continue;
+            }
+            StackTraceElement[] stackFrames = thread.getStackTrace();
+            if (stackFrames.length == 0) {
+                continue;
+            }
+            if (stackFrames.length > depth) {
+                stackFrames = Arrays.copyOf(stackFrames, depth);
+            }
+            mLastCountCells.add(recordStackTrace(thread, stackFrames));
+        }
+    }
+
+    private int[] recordStackTrace(final Thread thread, final StackTraceElement[] stackFrames) {
+        final Integer threadId = mThreadIds.get(thread);
+        if (threadId == null) {
+            throw new IllegalArgumentException("Unknown thread " + thread);
+        }
+        final TraceKey key = new TraceKey(threadId, stackFrames);
+        int[] countCell = mStackTraces.get(key);
+        if (countCell == null) {
+            countCell = new int[1];
+            mStackTraces.put(key, countCell);
+            mHprofData.addStackTrace(new StackTrace(mNextStackTraceId++, threadId, stackFrames), countCell);
+        }
+        countCell[0] += 1;
+        return countCell;
+    }
+
+    private void updateThreadHistory(final Thread[] newThreads) {
+        // The sampler thread may belong to the sampled thread group. It is never sampled, so keep it out of the
+        // history as well.
+        final Thread self = Thread.currentThread();
+        final Set<Thread> removedThreads = new HashSet<Thread>();
+        for (final Thread thread : mCurrentThreads) {
+            if (thread != null) {
+                removedThreads.add(thread);
+            }
+        }
+        for (final Thread thread : newThreads) {
+            if (thread != null && thread != self && !removedThreads.remove(thread)) {
+                addStartThread(thread);
+            }
+        }
+        for (final Thread thread : removedThreads) {
+            addEndThread(thread);
+        }
+    }
+
+    private void addStartThread(final Thread thread) {
+        final int threadId = mNextThreadId++;
+        mThreadIds.put(thread, threadId);
+        final ThreadGroup group = thread.getThreadGroup();
+        final String groupName = group == null ? null : group.getName();
+        final ThreadGroup parentGroup = group == null ? null : group.getParent();
+        final String parentGroupName = parentGroup == null ? null : parentGroup.getName();
+        mHprofData.addThreadEvent(ThreadEvent.start(mNextObjectId++, threadId, thread.getName(), groupName,
+                                                    parentGroupName));
+    }
+
+    private void addEndThread(final Thread thread) {
+        final Integer threadId = mThreadIds.remove(thread);
+        if (threadId != null) {
+            mHprofData.addThreadEvent(ThreadEvent.end(threadId));
+        }
+    }
+
+    /**
+     * Updates the moving average of the per-tick cost, and adjusts the interval and depth to keep the overhead within
+     * budget. Slowing down happens immediately, and is judged by the latest tick too, so a single expensive tick is
+     * enough to back off. Speeding up again waits for the average to settle.
+     */
+    private void adjust(final int baseInterval, final long costNanos) {
+        if (mAverageCostNanos == 0) {
+            mAverageCostNanos = costNanos;
+        } else {
+            mAverageCostNanos += kCostSmoothing * (costNanos - mAverageCostNanos);
+        }
+        ++mTicksSinceAdjustment;
+
+        // The cost per tick allowed by the budget at the requested interval.
+        final double budgetNanos = mOverheadBudget * baseInterval * 1e6;
+        final double worstCostNanos = Math.max(mAverageCostNanos, costNanos);
+        if (worstCostNanos > budgetNanos * mIntervalMultiplier) {
+            int multiplier = mIntervalMultiplier;
+            while (multiplier < kMaxIntervalMultiplier && worstCostNanos > budgetNanos * multiplier) {
+                multiplier *= 2;
+            }
+            if (multiplier != mIntervalMultiplier) {
+                mIntervalMultiplier = multiplier;
+            } else if (mIsDepthAdaptive && mDepth > kMinDepth) {
+                mDepth = Math.max(kMinDepth, mDepth / 2);
+            } else {
+                return;
+            }
+            mTicksSinceAdjustment = 0;
+            return;
+        }
+
+        if (mTicksSinceAdjustment < kSettleTicks) {
+            return;
+        }
+
+        if (mAverageCostNanos * 2 < budgetNanos * mIntervalMultiplier * kHeadroom) {
+            if (mDepth < mMaxDepth) {
+                mDepth = Math.min(mMaxDepth, mDepth * 2);
+            } else if (mIntervalMultiplier > 1) {
+                mIntervalMultiplier /= 2;
+            } else {
+                return;
+            }
+            mTicksSinceAdjustment = 0;
+        }
+    }
+
+    /**
+     * Identifies a unique stack trace of a thread.
+     */
+    private static final class TraceKey {
+        private final int mThreadId;
+        private final StackTraceElement[] mStackFrames;
+        private final int mHashCode;
+
+        TraceKey(final int threadId, final StackTraceElement[] stackFrames) {
+            mThreadId = threadId;
+            mStackFrames = stackFrames;
+            mHashCode = 31 * threadId + Arrays.hashCode(stackFrames);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof TraceKey)) {
+                return false;
+            }
+            final TraceKey that = (TraceKey) other;
+            return mThreadId == that.mThreadId && Arrays.equals(mStackFrames, that.mStackFrames);
+        }
+    }
+}
+
+/*
+
+AndroidSamplingProfiler — Exposing Dalvik's sampling profiler to general public.
+Copyright (C) 2013 HiHex Ltd.
+
+This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later 
+version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with this program.  If not, see 
+<http://www.gnu.org/licenses/>.
+
+*/
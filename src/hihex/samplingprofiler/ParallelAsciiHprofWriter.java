@@ -0,0 +1,312 @@
+package hihex.samplingprofiler;
+
+import dalvik.system.profiler.AsciiHprofWriter;
+import dalvik.system.profiler.HprofData;
+import dalvik.system.profiler.HprofData.Sample;
+import dalvik.system.profiler.HprofData.StackTrace;
+import dalvik.system.profiler.HprofData.ThreadEvent;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Formatter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A drop-in replacement of {@link AsciiHprofWriter} for profiles with a large number of unique stack traces.
+ *
+ * <p>
+ * The output has the same layout as {@link AsciiHprofWriter}, so it can still be consumed by PerfAnal and similar
+ * tools. The differences are:
+ * </p>
+ *
+ * <ul>
+ * <li>Samples are ordered using a primitive sort on the counts, with ties broken by their original order.</li>
+ * <li>The {@code TRACE} blocks and the ranking table are formatted in parallel chunks, each into its own byte buffer,
+ * and then written out in order. Only a few chunks are kept in memory at a time.</li>
+ * <li>Optionally, only the top <i>N</i> traces are written, and the rest are merged into a single trace whose only
+ * frame is {@code <other>.<other>}, so the output size stays bounded while the total still adds up to 100%. The merged
+ * trace is ranked by its count like the others, and belongs to a {@code <other>} thread with ID 0 which is recorded by
+ * its own {@code THREAD START} line.</li>
+ * </ul>
+ *
+ * @author kennytm
+ */
+public final class ParallelAsciiHprofWriter {
+    /**
+     * Number of samples formatted by each task.
+     */
+    private static final int kChunkSize = 1024;
+
+    /**
+     * The class and method name of the frame representing the merged traces.
+     */
+    private static final String kOtherName = "<other>";
+
+    /**
+     * The thread and object ID of the merged traces. The profilers number real threads from 200001 and objects from
+     * 100001, so this never collides with them.
+     */
+    private static final int kOtherThreadId = 0;
+
+    private static final Charset kCharset = Charset.defaultCharset();
+
+    private ParallelAsciiHprofWriter() {
+    }
+
+    /**
+     * Writes all samples of the provided data to the specified stream.
+     */
+    public static void write(final HprofData data, final OutputStream outputStream) throws IOException {
+        write(data, outputStream, 0);
+    }
+
+    /**
+     * Writes the provided data to the specified stream.
+     *
+     * @param maxTraces
+     *            The maximum number of traces to write. If there are more traces than this, the least frequent ones
+     *            will be merged into a single "other" trace. Pass 0 to write every trace.
+     */
+    public static void write(final HprofData data, final OutputStream outputStream, final int maxTraces)
+            throws IOException {
+        final Sample[] samples = data.getSamples().toArray(new Sample[0]);
+        final int sampleCount = samples.length;
+
+        // Sort by descending count. The count is stored in the high bits and the original index in the low bits, so
+        // a single ascending sort of primitive longs gives the order we need without boxing or a comparator.
+        final long[] keys = new long[sampleCount];
+        long total = 0;
+        int maxStackTraceId = 0;
+        for (int i = 0; i < sampleCount; ++i) {
+            final Sample sample = samples[i];
+            keys[i] = ((long) (Integer.MAX_VALUE - sample.count) << 32) | i;
+            total += sample.count;
+            maxStackTraceId = Math.max(maxStackTraceId, sample.stackTrace.stackTraceId);
+        }
+        Arrays.sort(keys);
+
+        final boolean hasOther = maxTraces > 0 && maxTraces < sampleCount;
+        final int keptCount = hasOther ? maxTraces : sampleCount;
+        final int rowCount = hasOther ? keptCount + 1 : keptCount;
+
+        // The merged trace is ranked by its count like any other trace, placed after the kept traces of equal count.
+        int otherCount = 0;
+        int otherRow = rowCount;
+        if (hasOther) {
+            long otherCountSum = 0;
+            for (int i = keptCount; i < sampleCount; ++i) {
+                otherCountSum += samples[(int) keys[i]].count;
+            }
+            otherCount = (int) Math.min(otherCountSum, Integer.MAX_VALUE);
+            otherRow = keptCount;
+            while (otherRow > 0 && samples[(int) keys[otherRow - 1]].count < otherCount) {
+                --otherRow;
+            }
+        }
+
+        final StackTrace[] stackTraces = new StackTrace[rowCount];
+        final int[] counts = new int[rowCount];
+        for (int i = 0; i < keptCount; ++i) {
+            final Sample sample = samples[(int) keys[i]];
+            final int row = i < otherRow ? i : i + 1;
+            stackTraces[row] = sample.stackTrace;
+            counts[row] = sample.count;
+        }
+        if (hasOther) {
+            final StackTraceElement[] frames = { new StackTraceElement(kOtherName, kOtherName, null, -1) };
+            stackTraces[otherRow] = new StackTrace(maxStackTraceId + 1, kOtherThreadId, frames);
+            counts[otherRow] = otherCount;
+        }
+
+        final StringBuilder builder = new StringBuilder();
+        for (final ThreadEvent event : data.getThreadHistory()) {
+            builder.append(event).append('\n');
+        }
+        if (hasOther) {
+            builder.append(ThreadEvent.start(kOtherThreadId, kOtherThreadId, kOtherName, kOtherName, null));
+            builder.append('\n');
+        }
+        outputStream.write(builder.toString().getBytes(kCharset));
+
+        // The accumulated percentage depends on every row before it, so compute it upfront. This is cheap compared
+        // with the formatting.
+        final double[] accums = new double[rowCount];
+        double accum = 0;
+        for (int i = 0; i < rowCount; ++i) {
+            accum += (double) counts[i] / (double) total;
+            accums[i] = accum;
+        }
+
+        final int chunkCount = (rowCount + kChunkSize - 1) / kChunkSize;
+        final List<Chunk> traceChunks = new ArrayList<Chunk>(chunkCount);
+        final List<Chunk> rankingChunks = new ArrayList<Chunk>(chunkCount);
+        for (int start = 0; start < rowCount; start += kChunkSize) {
+            final int end = Math.min(start + kChunkSize, rowCount);
+            traceChunks.add(new Chunk(stackTraces, counts, accums, total, start, end, /*isRanking*/false));
+            rankingChunks.add(new Chunk(stackTraces, counts, accums, total, start, end, /*isRanking*/true));
+        }
+
+        final int threadCount = Math.min(Runtime.getRuntime().availableProcessors(), chunkCount);
+        final ExecutorService executor = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+        try {
+            writeChunks(traceChunks, executor, 2 * threadCount, outputStream);
+
+            final Date now = new Date(data.getStartMillis());
+            final Formatter header = new Formatter();
+            // "CPU SAMPLES BEGIN (total = 826) Wed Jul 21 12:03:46 2010"
+            header.format("CPU SAMPLES BEGIN (total = %d) %ta %tb %td %tT %tY\n", total, now, now, now, now, now);
+            header.format("rank   self  accum   count trace method\n");
+            outputStream.write(header.toString().getBytes(kCharset));
+
+            writeChunks(rankingChunks, executor, 2 * threadCount, outputStream);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+
+        outputStream.write("CPU SAMPLES END\n".getBytes(kCharset));
+        outputStream.flush();
+    }
+
+    /**
+     * Formats the chunks and writes them in order. At most {@code maxInFlight} chunks are formatted or waiting to be
+     * written at any time, so the memory used does not grow with the size of the output.
+     *
+     * @param executor
+     *            The executor to format the chunks with, or null to format them on the current thread.
+     */
+    private static void writeChunks(final List<Chunk> chunks,
+                                    final ExecutorService executor,
+                                    final int maxInFlight,
+                                    final OutputStream outputStream) throws IOException {
+        if (executor == null) {
+            for (final Chunk chunk : chunks) {
+                outputStream.write(chunk.call());
+            }
+            return;
+        }
+
+        final Queue<Future<byte[]>> futures = new ArrayDeque<Future<byte[]>>(maxInFlight);
+        final Iterator<Chunk> iterator = chunks.iterator();
+        try {
+            while (futures.size() < maxInFlight && iterator.hasNext()) {
+                futures.add(executor.submit(iterator.next()));
+            }
+            while (!futures.isEmpty()) {
+                outputStream.write(futures.remove().get());
+                if (iterator.hasNext()) {
+                    futures.add(executor.submit(iterator.next()));
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while formatting traces");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Formats a range of rows into either the {@code TRACE} blocks or the ranking table lines.
+     */
+    private static final class Chunk implements Callable<byte[]> {
+        private final StackTrace[] mStackTraces;
+        private final int[] mCounts;
+        private final double[] mAccums;
+        private final long mTotal;
+        private final int mStart;
+        private final int mEnd;
+        private final boolean mIsRanking;
+
+        Chunk(final StackTrace[] stackTraces,
+              final int[] counts,
+              final double[] accums,
+              final long total,
+              final int start,
+              final int end,
+              final boolean isRanking) {
+            mStackTraces = stackTraces;
+            mCounts = counts;
+            mAccums = accums;
+            mTotal = total;
+            mStart = start;
+            mEnd = end;
+            mIsRanking = isRanking;
+        }
+
+        @Override
+        public byte[] call() {
+            return (mIsRanking ? formatRanking() : formatTraces()).getBytes(kCharset);
+        }
+
+        private String formatTraces() {
+            final StringBuilder traces = new StringBuilder();
+            for (int i = mStart; i < mEnd; ++i) {
+                final StackTrace stackTrace = mStackTraces[i];
+                traces.append("TRACE ").append(stackTrace.stackTraceId);
+                traces.append(": (thread=").append(stackTrace.getThreadId()).append(")\n");
+                for (final StackTraceElement frame : stackTrace.getStackFrames()) {
+                    traces.append('\t').append(frame).append('\n');
+                }
+            }
+            return traces.toString();
+        }
+
+        private String formatRanking() {
+            final Formatter ranking = new Formatter();
+            for (int i = mStart; i < mEnd; ++i) {
+                final StackTrace stackTrace = mStackTraces[i];
+                final StackTraceElement[] frames = stackTrace.getStackFrames();
+                final double self = (double) mCounts[i] / (double) mTotal;
+                // "   1 65.62% 65.62%     542 300302 java.lang.Long.parseLong"
+                ranking.format("% 4d% 6.2f%%% 6.2f%% % 7d % 5d %s.%s\n",
+                               i + 1,
+                               self * 100,
+                               mAccums[i] * 100,
+                               mCounts[i],
+                               stackTrace.stackTraceId,
+                               frames[0].getClassName(),
+                               frames[0].getMethodName());
+            }
+            return ranking.toString();
+        }
+    }
+}
+
+/*
+
+AndroidSamplingProfiler — Exposing Dalvik's sampling profiler to general public.
+Copyright (C) 2013 HiHex Ltd.
+
+This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later 
+version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with this program.  If not, see 
+<http://www.gnu.org/licenses/>.
+
+*/
@@ -10,7 +10,6 @@ import android.os.Bundle;
 import android.os.Process;
 import android.util.Log;
 
-import dalvik.system.profiler.AsciiHprofWriter;
 import dalvik.system.profiler.BinaryHprofWriter;
 import dalvik.system.profiler.HprofData;
 import dalvik.system.profiler.SamplingProfiler;
@@ -72,6 +71,8 @@ import java.io.IOException;
 public final class SamplingProfilerReceiver extends BroadcastReceiver {
     private static File sStorageDirectory = new File("/data/snapshots");
     private static SamplingProfiler sProfiler = null;
+    private static AdaptiveSamplingProfiler sAdaptiveProfiler = null;
+    private static int sMaxTraces = 0;
     private static final String kTag = "SamplingProfiler";
     private static final String kIntentAction = "hihex.samplingprofiler";
 
@@ -85,6 +86,11 @@ public final class SamplingProfilerReceiver extends BroadcastReceiver {
      */
     public static final int kDefaultDepth = 16;
 
+    /**
+     * The default overhead budget in adaptive mode, as a fraction of one core.
+     */
+    public static final double kDefaultOverheadBudget = 0.01;
+
     /**
      * Set the storage directory. New profile results will be written to this directory. The default directory is
      * {@code /data/snapshots} when used statically, or {@link Context#getCacheDir()} when called from
@@ -111,6 +117,15 @@ public final class SamplingProfilerReceiver extends BroadcastReceiver {
         sStorageDirectory = new File(newDirectory);
     }
 
+    /**
+     * Set the maximum number of traces written in ASCII format. The least frequent traces beyond this limit will be
+     * merged into a single "other" trace, to keep the size of huge profiles bounded. The default is 0, which writes
+     * every trace.
+     */
+    public static void setMaxTraces(final int maxTraces) {
+        sMaxTraces = maxTraces;
+    }
+
     /**
      * Start profiling the thread group the current thread belongs to.
      */
@@ -156,21 +171,86 @@ public final class SamplingProfilerReceiver extends BroadcastReceiver {
 
     private static void start(final int interval, final int depth, final SamplingProfiler.ThreadSet threadSet) {
         Log.i(kTag, "Starting/resuming profiler...");
-        if (sProfiler == null) {
+        if (sProfiler == null && sAdaptiveProfiler == null) {
             sProfiler = new SamplingProfiler(depth, threadSet);
+        } else if (sAdaptiveProfiler != null) {
+            Log.w(kTag, "Resuming the suspended adaptive profiler instead of starting a fixed-rate one.");
+        }
+        resume(interval);
+    }
+
+    /**
+     * Start profiling the thread group the current thread belongs to, adjusting the interval automatically to keep the
+     * overhead within the default budget.
+     */
+    public static void startAdaptive() {
+        startAdaptive(kDefaultOverheadBudget);
+    }
+
+    /**
+     * Start profiling the thread group the current thread belongs to, adjusting the interval automatically to keep the
+     * overhead within budget.
+     */
+    public static void startAdaptive(final double overheadBudget) {
+        startAdaptive(kDefaultInterval, kDefaultDepth, overheadBudget, /*isDepthAdaptive*/false,
+                      Thread.currentThread().getThreadGroup());
+    }
+
+    /**
+     * Start profiling all threads in the provided thread group, adjusting the interval automatically to keep the
+     * overhead within budget.
+     * 
+     * @param interval
+     *            The minimum sampling interval. The actual interval will be a power-of-two multiple of this.
+     * @param depth
+     *            The maximum depth of the stack trace.
+     * @param overheadBudget
+     *            The target CPU time spent on sampling, as a fraction of one core, e.g. 0.01 means 1%.
+     * @param isDepthAdaptive
+     *            Whether the depth may also be reduced when the interval alone cannot keep within budget.
+     * @param threadGroup
+     *            The thread group to sample.
+     */
+    public static void startAdaptive(final int interval,
+                                     final int depth,
+                                     final double overheadBudget,
+                                     final boolean isDepthAdaptive,
+                                     final ThreadGroup threadGroup) {
+        Log.i(kTag, "Starting/resuming adaptive profiler...");
+        if (sProfiler == null && sAdaptiveProfiler == null) {
+            final SamplingProfiler.ThreadSet threadSet = SamplingProfiler.newThreadGroupTheadSet(threadGroup);
+            sAdaptiveProfiler = new AdaptiveSamplingProfiler(depth, threadSet, overheadBudget, isDepthAdaptive);
+        } else if (sProfiler != null) {
+            Log.w(kTag, "Resuming the suspended fixed-rate profiler instead of starting an adaptive one.");
+        }
+        resume(interval);
+    }
+
+    private static void resume(final int interval) {
+        if (sProfiler != null) {
+            sProfiler.start(interval);
+        } else {
+            sAdaptiveProfiler.start(interval);
         }
-        sProfiler.start(interval);
     }
 
     /**
      * Suspend (pause) sampling.
      */
     public static void suspend() {
-        if (sProfiler == null) {
+        if (sProfiler == null && sAdaptiveProfiler == null) {
             return;
         }
         Log.i("SamplingProfilerReceiver", "Suspending profiler...");
-        sProfiler.stop();
+        pause();
+    }
+
+    private static void pause() {
+        if (sProfiler != null) {
+            sProfiler.stop();
+        } else {
+            sAdaptiveProfiler.stop();
+        }
     }
 
     /**
@@ -215,24 +295,24 @@ public final class SamplingProfilerReceiver extends BroadcastReceiver {
      * @return The output file.
      */
     public static File stop(final String processName, final boolean isBinary) {
-        if (sProfiler == null) {
+        if (sProfiler == null && sAdaptiveProfiler == null) {
             Log.w(kTag, "Profiler not started!");
             return null;
         }
 
-        sProfiler.stop();
+        pause();
 
         try {
             final File outputPath = File.createTempFile(processName + ".", ".hprof", sStorageDirectory);
             outputPath.setReadable(/*readable*/true, /*ownerOnly*/false);
 
             final BufferedOutputStream stream = new BufferedOutputStream(new FileOutputStream(outputPath));
-            final HprofData data = sProfiler.getHprofData();
+            final HprofData data = sProfiler != null ? sProfiler.getHprofData() : sAdaptiveProfiler.getHprofData();
             try {
                 if (isBinary) {
                     BinaryHprofWriter.write(data, stream);
                 } else {
-                    AsciiHprofWriter.write(data, stream);
+                    ParallelAsciiHprofWriter.write(data, stream, sMaxTraces);
                 }
             } finally {
                 stream.close();
@@ -244,8 +324,15 @@ public final class SamplingProfilerReceiver extends BroadcastReceiver {
             e.printStackTrace();
             return null;
         } finally {
-            sProfiler.shutdown();
-            sProfiler = null;
+            if (sProfiler != null) {
+                sProfiler.shutdown();
+                sProfiler = null;
+            } else {
+                Log.i(kTag, "Adaptive profiler ended with interval x" + sAdaptiveProfiler.getIntervalMultiplier()
+                        + ", depth " + sAdaptiveProfiler.getDepth());
+                sAdaptiveProfiler.shutdown();
+                sAdaptiveProfiler = null;
+            }
         }
     }
 
@@ -269,13 +356,23 @@ public final class SamplingProfilerReceiver extends BroadcastReceiver {
         if ("start".equals(action)) {
             final int interval = extras.getInt("interval", kDefaultInterval);
             final int depth = extras.getInt("depth", kDefaultDepth);
-            start(interval, depth, Thread.currentThread().getThreadGroup());
+            final float overheadBudget = extras.getFloat("budget", 0);
+            if (overheadBudget > 0) {
+                final boolean isDepthAdaptive = extras.getBoolean("adaptdepth", false);
+                startAdaptive(interval, depth, overheadBudget, isDepthAdaptive,
+                              Thread.currentThread().getThreadGroup());
+            } else {
+                start(interval, depth, Thread.currentThread().getThreadGroup());
+            }
             setResultCode(1);
         } else if ("stop".equals(action)) {
             final String directory = extras.getString("directory");
             if (directory != null) {
                 setStorageDirectory(directory);
             }
+            if (extras.containsKey("top")) {
+                setMaxTraces(extras.getInt("top"));
+            }
             final String format = extras.getString("format");
             final boolean isBinary;
             if (format == null || "ascii".equals(format)) {